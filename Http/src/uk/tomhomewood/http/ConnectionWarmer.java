@@ -0,0 +1,162 @@
+package uk.tomhomewood.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Moves DNS lookup, TCP connect and TLS handshake for known hosts off the critical path of the first request to each host.
+ * Warming a host resolves its name, which primes the platform's resolver cache, then sends a HEAD request and closes the response
+ * without disconnecting, which leaves a ready keep-alive connection in the platform's connection pool for later requests to reuse.
+ * Requests disconnect when they complete, so a warm connection is only guaranteed for the first request to each host. Each warmed
+ * host is therefore remembered for a time to live only, after which warming it again opens a new connection.
+ * All warmers share a small pool of background threads, which exit when there is nothing to warm.
+ */
+class ConnectionWarmer {
+	private final static String TAG = "HTTP WARM UP";
+
+	private static final int WARM_UP_THREADS = 2;
+	private static final long THREAD_KEEP_ALIVE_SECONDS = 10;
+
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(WARM_UP_THREADS, WARM_UP_THREADS, THREAD_KEEP_ALIVE_SECONDS,
+			TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, TAG);
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	static{
+		executor.allowCoreThreadTimeOut(true);		//Shared by every Http object, so it is never shut down; idle threads exit instead
+	}
+
+	private final long timeToLiveMs;
+	private final int timeoutMs;
+
+	private final ConcurrentHashMap<String, WarmHost> hosts;		//Keyed by origin, e.g. "https://example.com:443"
+
+	/**
+	 * A host that has been, or is being, warmed up.
+	 */
+	private static class WarmHost {
+		final URL origin;
+		final CountDownLatch warmUpComplete;
+		volatile long warmedTimestamp;		//Set just before the latch is released
+
+		WarmHost(URL origin){
+			this.origin = origin;
+			warmUpComplete = new CountDownLatch(1);
+		}
+
+		boolean isExpired(long timeToLiveMs){
+			return warmUpComplete.getCount()==0 && System.currentTimeMillis() - warmedTimestamp > timeToLiveMs;
+		}
+	}
+
+	/**
+	 * Constructor.
+	 * @param timeToLiveMs		How long a warmed host is remembered, in milliseconds. Warming it again within this time does nothing.
+	 * @param timeoutMs			The connect and read timeout used when warming a host, in milliseconds. This is also the longest time a
+	 * 							request will wait for a warm up of its host that is already in progress.
+	 */
+	ConnectionWarmer(long timeToLiveMs, int timeoutMs){
+		this.timeToLiveMs = timeToLiveMs;
+		this.timeoutMs = timeoutMs;
+		hosts = new ConcurrentHashMap<String, WarmHost>();
+	}
+
+	/**
+	 * Warms up a host in the background, unless it has been warmed within the time to live or is being warmed.
+	 * @param address		Any address on the host to warm up. Only the scheme, host and port are used.
+	 * @throws MalformedURLException	If the address is not a valid HTTP or HTTPS URL.
+	 */
+	void warmUp(String address) throws MalformedURLException {
+		URL url = new URL(address);
+		if(!url.getProtocol().equals("http") && !url.getProtocol().equals("https")){
+			throw new MalformedURLException("Only HTTP and HTTPS hosts can be warmed up: "+address);
+		}
+		URL origin = new URL(url.getProtocol(), url.getHost(), url.getPort(), "/");
+		String key = getOriginKey(url);
+		WarmHost existingHost = hosts.get(key);
+		if(existingHost!=null && !existingHost.isExpired(timeToLiveMs)){
+			return;
+		}
+		final WarmHost host = new WarmHost(origin);
+		boolean added = existingHost==null ? hosts.putIfAbsent(key, host)==null : hosts.replace(key, existingHost, host);
+		if(added){		//Otherwise another thread has just started warming this host
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					warm(host);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Called before a request opens a connection. If a warm up of the request's host is in progress, this waits for it to complete
+	 * (for at most the warm up timeout), so that the request reuses the warm connection instead of opening a second cold one.
+	 * This is a single map lookup if no hosts have been warmed.
+	 * @param url		The URL the request is about to connect to.
+	 */
+	void awaitWarmUp(URL url){
+		if(hosts.isEmpty()){
+			return;
+		}
+		String key = getOriginKey(url);
+		WarmHost host = hosts.get(key);
+		if(host!=null){
+			if(host.isExpired(timeToLiveMs)){
+				hosts.remove(key, host);
+			}
+			else if(host.warmUpComplete.getCount()>0){
+				try {
+					host.warmUpComplete.await(timeoutMs, TimeUnit.MILLISECONDS);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	private void warm(WarmHost host){
+		try{
+			InetAddress.getAllByName(host.origin.getHost());		//Resolve first, so a DNS failure does not wait for the connect timeout
+			HttpURLConnection urlConnection = (HttpURLConnection) host.origin.openConnection();
+			urlConnection.setConnectTimeout(timeoutMs);
+			urlConnection.setReadTimeout(timeoutMs);
+			urlConnection.setRequestMethod("HEAD");
+			urlConnection.setInstanceFollowRedirects(false);		//Only this host is being warmed, never connect to a redirect target
+			int responseCode = urlConnection.getResponseCode();		//Any response at all means the connection, including any TLS handshake, is established
+			InputStream inputStream = responseCode<HttpURLConnection.HTTP_BAD_REQUEST ? urlConnection.getInputStream() : urlConnection.getErrorStream();
+			if(inputStream!=null){
+				inputStream.close();		//Closing rather than disconnecting returns the connection to the pool
+			}
+		}
+		catch(IOException e){
+			Log.e(TAG, "Error warming up "+host.origin.getHost()+": "+e.toString());
+		}
+		finally{
+			host.warmedTimestamp = System.currentTimeMillis();
+			host.warmUpComplete.countDown();
+		}
+	}
+
+	private static String getOriginKey(URL url){
+		int port = url.getPort()!=-1 ? url.getPort() : url.getDefaultPort();
+		return url.getProtocol()+"://"+url.getHost().toLowerCase()+":"+port;
+	}
+}
@@ -0,0 +1,50 @@
+package uk.tomhomewood.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An {@link InputStream} that counts the bytes read through it.
+ */
+class CountingInputStream extends FilterInputStream {
+	private long count;
+
+	CountingInputStream(InputStream in){
+		super(in);
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if(b!=-1){
+			count++;
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int count) throws IOException {
+		int bytesRead = super.read(buffer, offset, count);
+		if(bytesRead>0){
+			this.count+= bytesRead;
+		}
+		return bytesRead;
+	}
+
+	@Override
+	public long skip(long count) throws IOException {
+		long bytesSkipped = super.skip(count);
+		if(bytesSkipped>0){
+			this.count+= bytesSkipped;
+		}
+		return bytesSkipped;
+	}
+
+	/**
+	 * @return		The number of bytes read so far.
+	 */
+	long getCount(){
+		return count;
+	}
+}
@@ -0,0 +1,627 @@
+package uk.tomhomewood.http;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map.Entry;
+
+import android.util.Log;
+
+/**
+ * A persistent, size-bounded cache for files fetched by {@link Http#downloadFile(Integer, String, java.util.HashMap, String, String, int, int, android.os.Bundle)}.
+ * Content is stored once per unique SHA-1 hash, so several URLs that serve identical bytes share a single file on disk. Each URL
+ * is recorded along with its ETag, Last-Modified and expiry values, which are used to avoid or revalidate subsequent downloads.
+ * When the total size of the stored content exceeds the maximum size, the least recently used URLs are evicted, and files larger
+ * than the maximum size are never stored.
+ * All writes are synced to disk and go through a temporary file followed by a rename, so a crash never leaves a partially written
+ * file in the cache. Failures while reading or writing the cache are logged and never thrown, so a broken cache only costs a download.
+ * This class is thread safe; a single instance may be shared between several {@link Http} objects.
+ */
+public class DownloadCache {
+	private final static String TAG = "HTTP CACHE";
+
+	private static final String INDEX_FILE_NAME = "index";
+	private static final String TEMP_FILE_SUFFIX = ".tmp";
+	private static final String FIELD_SEPARATOR = "\t";
+
+	private static final String[] PRIVATE_REQUEST_HEADERS = {"Authorization", "Cookie"};
+
+	private final File directory;
+	private final long maximumSizeBytes;
+
+	private final LinkedHashMap<String, CacheEntry> entries;		//Keyed by cache key, in access order so that the first entry is always the least recently used
+
+	/**
+	 * Constructor. Any existing cache in the given directory is loaded, and any temporary or unreferenced files left behind by
+	 * a previous crash are removed.
+	 * @param directory				The directory in which cached content will be stored. It will be created if it does not exist.
+	 * 								This directory should be used exclusively by this cache.
+	 * @param maximumSizeBytes		The maximum total size of the cached content, in bytes.
+	 */
+	public DownloadCache(File directory, long maximumSizeBytes){
+		this.directory = directory;
+		this.maximumSizeBytes = maximumSizeBytes;
+		entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+		if(!directory.exists() && !directory.mkdirs()){
+			Log.e(TAG, "Unable to create cache directory: "+directory.getAbsolutePath());
+		}
+		readIndex();
+		removeOrphanedFiles();
+	}
+
+	/**
+	 * A single cached URL. The validators and expiry are updated when the entry is revalidated, so they are volatile.
+	 */
+	static class CacheEntry {
+		final String key;
+		final String hash;
+		final long size;
+		final String fileName;
+		volatile String eTag;
+		volatile String lastModified;
+		volatile long expiresTimestamp;
+		int pinCount;		//Guarded by the cache. Pinned entries are being read, and are never evicted
+
+		CacheEntry(String key, String hash, long size, String fileName, String eTag, String lastModified, long expiresTimestamp){
+			this.key = key;
+			this.hash = hash;
+			this.size = size;
+			this.fileName = fileName;
+			this.eTag = eTag;
+			this.lastModified = lastModified;
+			this.expiresTimestamp = expiresTimestamp;
+		}
+
+		/**
+		 * @return		True if this entry may be used without revalidating it with the server.
+		 */
+		boolean isFresh(){
+			return System.currentTimeMillis() < expiresTimestamp;
+		}
+	}
+
+	/**
+	 * Writes a new cache entry while its response is downloaded, hashing the content as it goes. Created by {@link DownloadCache#startPut(long)}.
+	 * Failures are logged and abandon the entry, they are never thrown, so caching cannot affect the download itself.
+	 */
+	class EntryWriter {
+		private final File tempFile;
+		private final FileOutputStream outputStream;
+		private final MessageDigest digest;
+		private long size;
+		private boolean abandoned;
+
+		private EntryWriter(File tempFile, FileOutputStream outputStream){
+			this.tempFile = tempFile;
+			this.outputStream = outputStream;
+			digest = getDigest();
+		}
+
+		/**
+		 * Adds a chunk of the response body to the entry.
+		 * @param buffer		The buffer holding the chunk.
+		 * @param offset		The offset of the chunk in the buffer.
+		 * @param count			The length of the chunk, in bytes.
+		 */
+		void write(byte[] buffer, int offset, int count){
+			if(abandoned){
+				return;
+			}
+			size+= count;
+			if(size > maximumSizeBytes){
+				abandon();
+				return;
+			}
+			try{
+				outputStream.write(buffer, offset, count);
+				digest.update(buffer, offset, count);
+			}
+			catch(IOException e){
+				Log.e(TAG, "Error adding to cache: "+e.toString());
+				abandon();
+			}
+		}
+
+		/**
+		 * Adds the complete entry to the cache. The content is synced to disk and then renamed into place, so readers never see partial content.
+		 * @param key				The cache key, from {@link DownloadCache#getKey(String, HashMap)}.
+		 * @param urlConnection		The connection on which the response was received.
+		 * @param fileName			The name the downloaded file should be given when it is served from the cache.
+		 */
+		void commit(String key, HttpURLConnection urlConnection, String fileName){
+			if(abandoned){
+				return;
+			}
+			try{
+				try{
+					outputStream.getFD().sync();		//Otherwise, after a power loss the renamed file may be empty
+				}
+				finally{
+					outputStream.close();
+				}
+				String hash = toHexString(digest.digest());
+				CacheEntry entry = new CacheEntry(key, hash, size, fileName, urlConnection.getHeaderField("ETag"),
+						urlConnection.getHeaderField("Last-Modified"), getExpiresTimestamp(urlConnection));
+				synchronized(DownloadCache.this){
+					File contentFile = getContentFile(hash);
+					if(!contentFile.exists() && !tempFile.renameTo(contentFile)){		//If the content file already exists, we already hold these bytes for another URL
+						throw new IOException("Unable to move content into the cache: "+contentFile.getAbsolutePath());
+					}
+					CacheEntry previousEntry = entries.put(key, entry);
+					if(previousEntry!=null && !previousEntry.hash.equals(hash)){
+						deleteContentIfUnreferenced(previousEntry.hash);
+					}
+					trimToSize();
+					writeIndex();
+				}
+			}
+			catch(IOException e){
+				Log.e(TAG, "Error adding to cache: "+e.toString());
+			}
+			finally{
+				abandoned = true;
+				if(tempFile.exists()){
+					tempFile.delete();
+				}
+			}
+		}
+
+		/**
+		 * Discards the entry, e.g. because the download failed. Does nothing if the entry has already been committed.
+		 */
+		void abandon(){
+			if(abandoned){
+				return;
+			}
+			abandoned = true;
+			try{
+				outputStream.close();
+			}
+			catch(IOException e){}
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * Checks whether a request may use the cache at all. Requests that carry credentials are never cached, so that a response
+	 * fetched for one user is never stored on disk or served to another.
+	 * @param headers		The request headers, which may be null.
+	 * @return				True if the request may be cached.
+	 */
+	static boolean isCacheableRequest(HashMap<String, String> headers){
+		if(headers!=null){
+			for(String name : headers.keySet()){
+				for(String privateHeader : PRIVATE_REQUEST_HEADERS){
+					if(privateHeader.equalsIgnoreCase(name)){
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the key a request is cached under. Requests for the same URL with different headers (e.g. Accept) are cached separately.
+	 * @param url			The URL of the request.
+	 * @param headers		The request headers, which may be null.
+	 * @return				The cache key.
+	 */
+	static String getKey(String url, HashMap<String, String> headers){
+		if(headers==null || headers.isEmpty()){
+			return url;
+		}
+		ArrayList<String> headerLines = new ArrayList<String>();
+		for(Entry<String, String> header : headers.entrySet()){
+			headerLines.add(header.getKey().toLowerCase(Locale.US)+":"+header.getValue());
+		}
+		Collections.sort(headerLines);		//So that the key does not depend on the map's iteration order
+		MessageDigest digest = getDigest();
+		for(String headerLine : headerLines){
+			digest.update(headerLine.getBytes());
+			digest.update((byte) '\n');
+		}
+		return url+" "+toHexString(digest.digest());		//A space can never appear in a valid URL, so keys cannot collide with plain URLs
+	}
+
+	/**
+	 * Gets the entry for a key, marking it as the most recently used.
+	 * @param key		The cache key, from {@link #getKey(String, HashMap)}.
+	 * @return			The entry for this key, or null if it is not cached.
+	 */
+	synchronized CacheEntry get(String key){
+		CacheEntry entry = entries.get(key);
+		if(entry!=null && getContentFile(entry.hash).length()!=entry.size){		//The content is missing or damaged, forget about it
+			entries.remove(key);
+			deleteContentIfUnreferenced(entry.hash);
+			writeIndex();
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Adds conditional request headers to a connection, so that the server can respond with 304 Not Modified if the cached
+	 * content is still valid.
+	 * @param urlConnection		The connection to add the headers to. This must not yet be connected.
+	 * @param entry				The cached entry being revalidated.
+	 */
+	void addValidatorsToConnection(HttpURLConnection urlConnection, CacheEntry entry){
+		String eTag = entry.eTag;
+		if(eTag!=null){
+			urlConnection.setRequestProperty("If-None-Match", eTag);
+		}
+		String lastModified = entry.lastModified;
+		if(lastModified!=null){
+			urlConnection.setRequestProperty("If-Modified-Since", lastModified);
+		}
+	}
+
+	/**
+	 * Updates an entry after the server has confirmed it is still valid, with a 304 response.
+	 * @param entry				The entry that was revalidated.
+	 * @param urlConnection		The connection on which the 304 response was received.
+	 */
+	synchronized void entryRevalidated(CacheEntry entry, HttpURLConnection urlConnection){
+		String eTag = urlConnection.getHeaderField("ETag");
+		if(eTag!=null){
+			entry.eTag = eTag;
+		}
+		String lastModified = urlConnection.getHeaderField("Last-Modified");
+		if(lastModified!=null){
+			entry.lastModified = lastModified;
+		}
+		entry.expiresTimestamp = getExpiresTimestamp(urlConnection);
+		writeIndex();
+	}
+
+	/**
+	 * Checks whether a response may be stored in the cache.
+	 * @param urlConnection		The connection on which the response was received.
+	 * @return					True if the response may be cached, false if the server has forbidden it.
+	 */
+	boolean isCacheable(HttpURLConnection urlConnection){
+		String cacheControl = urlConnection.getHeaderField("Cache-Control");
+		return cacheControl==null || !cacheControl.toLowerCase(Locale.US).contains("no-store");
+	}
+
+	/**
+	 * Starts storing a response in the cache. The caller passes each chunk of the response body to the returned writer as it
+	 * is downloaded, so the body is hashed and written to the cache without a second pass over the downloaded file.
+	 * @param expectedSize		The size of the response body, in bytes, or -1 if it is not known.
+	 * @return					A writer for the new entry, or null if the response is too large to cache or the cache cannot be written.
+	 */
+	EntryWriter startPut(long expectedSize){
+		if(expectedSize > maximumSizeBytes){
+			return null;
+		}
+		File tempFile = null;
+		try{
+			tempFile = File.createTempFile("download", TEMP_FILE_SUFFIX, directory);
+			return new EntryWriter(tempFile, new FileOutputStream(tempFile));
+		}
+		catch(IOException e){
+			Log.e(TAG, "Error adding to cache: "+e.toString());
+			if(tempFile!=null){
+				tempFile.delete();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Copies the cached content of an entry to a destination file. The content is copied to a temporary file alongside the
+	 * destination, and then renamed over it. The entry is pinned while it is copied, so it cannot be evicted part way through.
+	 * If the entry has already been evicted, or its content cannot be read, it is removed from the cache.
+	 * @param entry				The cached entry to copy.
+	 * @param destination		The file to create or overwrite.
+	 * @return					True if the destination now holds the cached content, false otherwise.
+	 */
+	boolean copyToFile(CacheEntry entry, File destination){
+		synchronized(this){
+			if(entries.get(entry.key)!=entry){		//Evicted or replaced since it was looked up
+				return false;
+			}
+			entry.pinCount++;
+		}
+		File tempFile = new File(destination.getAbsolutePath()+TEMP_FILE_SUFFIX);
+		boolean copied = false;
+		try{
+			copyFile(getContentFile(entry.hash), tempFile);
+			if(!tempFile.renameTo(destination)){
+				destination.delete();		//Some file systems will not rename over an existing file
+				if(!tempFile.renameTo(destination)){
+					throw new IOException("Unable to move cached content to: "+destination.getAbsolutePath());
+				}
+			}
+			copied = true;
+		}
+		catch(IOException e){
+			Log.e(TAG, "Error reading from cache: "+e.toString());
+			tempFile.delete();
+		}
+		finally{
+			synchronized(this){
+				entry.pinCount--;
+				if(!copied && entries.get(entry.key)==entry){		//The content is unreadable, so stop serving it
+					entries.remove(entry.key);
+					deleteContentIfUnreferenced(entry.hash);
+					writeIndex();
+				}
+			}
+		}
+		return copied;
+	}
+
+	/**
+	 * Removes a URL from the cache. Its content is deleted unless another URL shares it.
+	 * @param url		The URL to remove. Only entries cached without request headers are removed.
+	 */
+	public synchronized void remove(String url){
+		CacheEntry entry = entries.remove(url);
+		if(entry!=null){
+			deleteContentIfUnreferenced(entry.hash);
+			writeIndex();
+		}
+	}
+
+	/**
+	 * Removes all entries and content from the cache.
+	 */
+	public synchronized void clear(){
+		Iterator<CacheEntry> iterator = entries.values().iterator();
+		while(iterator.hasNext()){
+			getContentFile(iterator.next().hash).delete();
+			iterator.remove();
+		}
+		writeIndex();
+	}
+
+	/**
+	 * @return		The total size of the content currently held in the cache, in bytes.
+	 */
+	public synchronized long getSize(){
+		long size = 0;
+		HashSet<String> countedHashes = new HashSet<String>();
+		for(CacheEntry entry : entries.values()){
+			if(countedHashes.add(entry.hash)){
+				size+= entry.size;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Evicts least recently used entries until the cache is within its maximum size. Pinned entries are skipped, and are
+	 * evicted by a later trim once they have been read.
+	 */
+	private void trimToSize(){
+		long size = getSize();
+		Iterator<CacheEntry> iterator = entries.values().iterator();		//Iteration order is least recently used first
+		while(size > maximumSizeBytes && iterator.hasNext()){
+			CacheEntry eldestEntry = iterator.next();
+			if(eldestEntry.pinCount>0){
+				continue;
+			}
+			iterator.remove();
+			if(deleteContentIfUnreferenced(eldestEntry.hash)){
+				size-= eldestEntry.size;
+			}
+		}
+	}
+
+	private boolean deleteContentIfUnreferenced(String hash){
+		for(CacheEntry entry : entries.values()){
+			if(entry.hash.equals(hash)){
+				return false;
+			}
+		}
+		getContentFile(hash).delete();
+		return true;
+	}
+
+	private File getContentFile(String hash){
+		return new File(directory, hash);
+	}
+
+	private long getExpiresTimestamp(HttpURLConnection urlConnection){
+		String cacheControl = urlConnection.getHeaderField("Cache-Control");
+		if(cacheControl!=null){
+			long maxAgeSeconds = -1;
+			String[] directives = cacheControl.toLowerCase(Locale.US).split(",");
+			for(String directive : directives){		//Every directive is checked, as no-cache overrides max-age wherever it appears
+				directive = directive.trim();
+				if(directive.equals("no-cache")){
+					return 0;
+				}
+				else if(directive.startsWith("max-age=")){
+					try{
+						maxAgeSeconds = Long.parseLong(directive.substring(8).trim());
+					}
+					catch(NumberFormatException e){
+						return 0;
+					}
+				}
+			}
+			if(maxAgeSeconds>=0){
+				return System.currentTimeMillis() + (maxAgeSeconds - getAgeSeconds(urlConnection)) * 1000;
+			}
+		}
+		long expires = urlConnection.getExpiration();		//Falls back to the Expires header, which is 0 if absent
+		if(expires==0){
+			return 0;
+		}
+		long date = urlConnection.getDate();
+		if(date!=0){		//Expires is relative to the origin's clock, so only the lifetime it gives is used
+			return System.currentTimeMillis() + (expires - date) - getAgeSeconds(urlConnection) * 1000;
+		}
+		return expires - getAgeSeconds(urlConnection) * 1000;
+	}
+
+	/**
+	 * @param urlConnection		The connection on which the response was received.
+	 * @return					The time the response has already spent in other caches, from the Age header, in seconds.
+	 */
+	private long getAgeSeconds(HttpURLConnection urlConnection){
+		String age = urlConnection.getHeaderField("Age");
+		if(age!=null){
+			try{
+				return Math.max(0, Long.parseLong(age.trim()));
+			}
+			catch(NumberFormatException e){}
+		}
+		return 0;
+	}
+
+	/**
+	 * Copies a file. The copy is not synced to disk, as it is only a delivered copy of content the cache already holds safely.
+	 * @param source			The file to copy.
+	 * @param destination		The file to write.
+	 * @throws IOException		If the copy failed.
+	 */
+	private static void copyFile(File source, File destination) throws IOException {
+		InputStream inputStream = new FileInputStream(source);
+		try{
+			FileOutputStream outputStream = new FileOutputStream(destination);
+			try{
+				int bytesRead = -1;
+				byte[] buffer = new byte[8192];
+				while ((bytesRead = inputStream.read(buffer)) != -1) {
+					outputStream.write(buffer, 0, bytesRead);
+				}
+			}
+			finally{
+				outputStream.close();
+			}
+		}
+		finally{
+			inputStream.close();
+		}
+	}
+
+	private void readIndex(){
+		File indexFile = new File(directory, INDEX_FILE_NAME);
+		if(!indexFile.exists()){
+			return;
+		}
+		try{
+			BufferedReader reader = new BufferedReader(new FileReader(indexFile));
+			try{
+				for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+					String[] fields = line.split(FIELD_SEPARATOR, -1);
+					if(fields.length==7){
+						try{
+							entries.put(fields[0], new CacheEntry(fields[0], fields[1], Long.parseLong(fields[2]), fields[3],
+									emptyToNull(fields[4]), emptyToNull(fields[5]), Long.parseLong(fields[6])));
+						}
+						catch(NumberFormatException e){
+							Log.e(TAG, "Ignoring invalid cache index line: "+line);
+						}
+					}
+				}
+			}
+			finally{
+				reader.close();
+			}
+		}
+		catch(IOException e){
+			Log.e(TAG, "Error reading cache index: "+e.toString());
+			entries.clear();
+		}
+	}
+
+	private void writeIndex(){
+		File indexFile = new File(directory, INDEX_FILE_NAME);
+		File tempFile = new File(directory, INDEX_FILE_NAME+TEMP_FILE_SUFFIX);
+		try{
+			FileOutputStream outputStream = new FileOutputStream(tempFile);
+			PrintWriter out = new PrintWriter(outputStream);
+			for(CacheEntry entry : entries.values()){		//Written in access order, so the LRU order survives a restart
+				out.print(entry.key+FIELD_SEPARATOR+entry.hash+FIELD_SEPARATOR+entry.size+FIELD_SEPARATOR+entry.fileName+FIELD_SEPARATOR
+						+nullToEmpty(entry.eTag)+FIELD_SEPARATOR+nullToEmpty(entry.lastModified)+FIELD_SEPARATOR+entry.expiresTimestamp+"\n");
+			}
+			out.flush();
+			boolean failed = out.checkError();
+			if(!failed){
+				outputStream.getFD().sync();
+			}
+			out.close();
+			if(failed || !tempFile.renameTo(indexFile)){
+				Log.e(TAG, "Error writing cache index");
+				tempFile.delete();
+			}
+		}
+		catch(IOException e){
+			Log.e(TAG, "Error writing cache index: "+e.toString());
+			tempFile.delete();
+		}
+	}
+
+	private void removeOrphanedFiles(){
+		File[] files = directory.listFiles();
+		if(files==null){
+			return;
+		}
+		HashSet<String> referencedHashes = new HashSet<String>();
+		ArrayList<String> invalidKeys = new ArrayList<String>();
+		for(Entry<String, CacheEntry> entry : entries.entrySet()){
+			if(getContentFile(entry.getValue().hash).length()==entry.getValue().size){
+				referencedHashes.add(entry.getValue().hash);
+			}
+			else{		//Missing, or damaged by a crash
+				invalidKeys.add(entry.getKey());
+			}
+		}
+		for(File file : files){
+			if(!file.getName().equals(INDEX_FILE_NAME) && !referencedHashes.contains(file.getName())){		//Left over from an interrupted write or eviction
+				file.delete();
+			}
+		}
+		if(!invalidKeys.isEmpty()){
+			for(String key : invalidKeys){
+				entries.remove(key);
+			}
+			writeIndex();
+		}
+	}
+
+	private static MessageDigest getDigest(){
+		try{
+			return MessageDigest.getInstance("SHA-1");
+		}
+		catch(NoSuchAlgorithmException e){
+			throw new IllegalStateException("SHA-1 is not available", e);		//Every Java platform is required to support SHA-1
+		}
+	}
+
+	private static String toHexString(byte[] bytes){
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for(byte b : bytes){
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	private static String nullToEmpty(String value){
+		return value==null ? "" : value;
+	}
+
+	private static String emptyToNull(String value){
+		return value.length()==0 ? null : value;
+	}
+}
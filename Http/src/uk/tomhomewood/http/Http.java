@@ -14,6 +14,7 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map.Entry;
@@ -47,17 +48,25 @@ public class Http {
 	protected static final int CONNECT_TIMEOUT_MS = 3000;
 	protected static final int READ_TIMEOUT_MS = 5000;
 	
-	private final int MIN_FILE_UPLOAD_INTERVAL_MS = 100;
+	public static final long DEFAULT_WARM_UP_TTL_MS = 60000;
+	
+	private final int MIN_PROGRESS_EVENT_INTERVAL_MS = 100;
 	
 	private Handler handler;
 	
 	private ConnectivityManager connectivityManager;
 	private NetworkInfo networkInfo;
 	
-	private long lastFileProgressEventTimestamp;
+	private ProgressDispatcher progressDispatcher;
 	
 	private boolean debugRequests = false;
 	
+	private DownloadCache downloadCache;
+	
+	private RequestTracer requestTracer;
+	
+	private ConnectionWarmer connectionWarmer;
+	
 	/**
 	 * Constructor.
 	 * @param context		The context of this {@link Http} object's parent class. 
@@ -70,7 +79,8 @@ public class Http {
 		
 		parentInterface = eventListener;
 		handler = new Handler();
-		setDebuggingEnabled(true);
+		progressDispatcher = new ProgressDispatcher(handler, eventListener, MIN_PROGRESS_EVENT_INTERVAL_MS);
+		connectionWarmer = new ConnectionWarmer(DEFAULT_WARM_UP_TTL_MS, CONNECT_TIMEOUT_MS);
 	}
 	
 	/**
@@ -96,6 +106,57 @@ public class Http {
 		debugRequests = enabled;
 	}
 	
+	/**
+	 * Sets the cache used by {@link #downloadFile(Integer, String, HashMap, String, String, int, int, Bundle)}. When a cache is set,
+	 * downloaded content is stored in it and later downloads of the same address are served from it, either without contacting the
+	 * server at all if the cached copy is still fresh, or after the server confirms that the cached copy has not been modified.
+	 * Downloads with an Authorization or Cookie header are never cached. No cache is used by default.
+	 * @param cache		The {@link DownloadCache} to use, or null to disable caching of downloads.
+	 */
+	public void setDownloadCache(DownloadCache cache){
+		downloadCache = cache;
+	}
+	
+	/**
+	 * Sets the tracer used to record a sample of this object's requests. Unlike debugging, tracing never records request or
+	 * response bodies, and costs almost nothing for requests that are not sampled, so it may be left enabled in production.
+	 * No tracer is used by default.
+	 * @param tracer		The {@link RequestTracer} to record requests to, or null to disable tracing.
+	 */
+	public void setRequestTracer(RequestTracer tracer){
+		requestTracer = tracer;
+	}
+	
+	/**
+	 * Warms up connections to a set of hosts in the background, so that the first requests to them do not pay for DNS lookup,
+	 * TCP connect and TLS handshake. Call this as early as possible, e.g. when your application starts. A request to a host whose
+	 * warm up is still in progress waits for it to complete, rather than opening a second connection. Requests close their
+	 * connections when they complete, so only the first request to each host is sure to benefit. A host that was warmed within
+	 * the last {@link #DEFAULT_WARM_UP_TTL_MS} milliseconds is not warmed again.
+	 * @param addresses		An address on each host to warm up, e.g. "https://api.example.com". Only the scheme, host and port of each
+	 * 						address are used. Invalid and non HTTP(S) addresses are ignored.
+	 */
+	public void warmUp(Collection<String> addresses){
+		for(String address : addresses){
+			try {
+				connectionWarmer.warmUp(address);
+			}
+			catch (MalformedURLException e) {
+				Log.e(TAG, "Unable to warm up invalid address: "+address);
+			}
+		}
+	}
+	
+	private HttpURLConnection openConnection(URL url) throws IOException {
+		connectionWarmer.awaitWarmUp(url);
+		return (HttpURLConnection) url.openConnection();
+	}
+	
+	private RequestTrace startTrace(String method, String address){
+		RequestTracer tracer = requestTracer;
+		return tracer!=null ? tracer.startTrace(method, address) : null;
+	}
+	
 	/**
 	 * Executes an HTTP GET request to the specified address.
 	 * @param requestCode		An integer code that is used to tag requests. This code is returned to you when 
@@ -118,6 +179,7 @@ public class Http {
 					if(debugRequests){
 						Log.d(TAG+" GET REQUEST:", address);
 					}
+					RequestTrace trace = startTrace("GET", address);
 					String responseString = null;
 	
 					URL url = null;
@@ -129,7 +191,7 @@ public class Http {
 					catch (MalformedURLException e) {}
 					if(url!=null){
 						try {
-							urlConnection = (HttpURLConnection) url.openConnection();
+							urlConnection = openConnection(url);
 							//urlConnection.setDoOutput(true);
 							urlConnection.setRequestMethod("GET");
 							urlConnection.setReadTimeout(timeoutSeconds * 1000);
@@ -145,9 +207,12 @@ public class Http {
 								Log.e(TAG, "Error executing GET request, response code was: "+responseCode);
 							}
 */							
-							responseString = readResponse(urlConnection);
+							responseString = readResponse(urlConnection, trace);
 						}
 						catch (SocketTimeoutException e) {		//Reach here if the server didn't give us a socket
+							if(trace!=null){
+								trace.threwException(e);
+							}
 							//The policy in this case is to retry the connection, provided we have not already reached the maximum number of retries
 							if(maximumRetries>0){			//True if there is still at least one retry left
 								Log.e(TAG, "Exception while executing request: "+e.toString());
@@ -159,6 +224,9 @@ public class Http {
 							}
 						}
 						catch (IOException e) {
+							if(trace!=null){
+								trace.threwException(e);
+							}
 							Log.e(TAG, "Error executing GET request: "+e.toString());
 							e.printStackTrace();
 						}
@@ -169,13 +237,22 @@ public class Http {
 							if(debugRequests){
 								Log.d(TAG+" GET RESPONSE:", responseString);
 							}
+							if(trace!=null){
+								trace.succeeded();
+							}
 							sendRequestCompleteEvent(requestCode, responseString, extras);
 						}
 						else{
+							if(trace!=null){
+								trace.failed(ERROR_EMPTY_RESPONSE);
+							}
 							sendErrorEvent(requestCode, ERROR_EMPTY_RESPONSE, extras);
 						}
 					}
 					else{
+						if(trace!=null){
+							trace.failed(ERROR_URL_INVALID);
+						}
 						sendErrorEvent(requestCode, ERROR_URL_INVALID, extras);
 					}
 				}
@@ -210,6 +287,7 @@ public class Http {
 						Log.d(TAG+" POST REQUEST:", address);
 						Log.d(TAG+" POST BODY:", body);
 					}
+					RequestTrace trace = startTrace("POST", address);
 					String responseString = null;
 	
 					URL url = null;
@@ -221,7 +299,7 @@ public class Http {
 					catch (MalformedURLException e) {}
 					if(url!=null){
 						try {
-							urlConnection = (HttpURLConnection) url.openConnection();
+							urlConnection = openConnection(url);
 							urlConnection.setConnectTimeout(2000);
 							urlConnection.setReadTimeout(2500);
 							
@@ -238,19 +316,32 @@ public class Http {
 							
 							urlConnection.setRequestProperty("Content-Type", "application/json");
 							
-							urlConnection.setFixedLengthStreamingMode(body.getBytes().length);
+							int bodyLength = body.getBytes().length;
+							urlConnection.setFixedLengthStreamingMode(bodyLength);
+							connect(urlConnection, trace);
 		
 							PrintWriter out = new PrintWriter(urlConnection.getOutputStream());
 							out.print(body);
 							out.close();
+							if(trace!=null){
+								trace.phaseReached(RequestTrace.PHASE_REQUEST_SENT);
+								trace.setBytesSent(bodyLength);
+							}
 							
 							int responseCode = urlConnection.getResponseCode();
+							if(trace!=null){
+								trace.phaseReached(RequestTrace.PHASE_RESPONSE_HEADERS_RECEIVED);
+								trace.setResponseCode(responseCode);
+							}
 							if(!responseCodeOk(responseCode)){		//Response code was not ok, output a log message
 								Log.e(TAG, "Error executing POST request, response code was: "+responseCode);
 							}
-							responseString = readResponse(urlConnection);
+							responseString = readResponse(urlConnection, trace);
 						}
 						catch (Exception e) {		//Reach here if the server didn't give us a socket or some other exception occurred
+							if(trace!=null){
+								trace.threwException(e);
+							}
 							//The policy in this case is to retry the connection, provided we have not already reached the maximum number of retries
 							if(maximumRetries>0){			//True if there is still at least one retry left
 								Log.e(TAG, "Exception while executing request: "+e.toString());
@@ -266,13 +357,22 @@ public class Http {
 							if(debugRequests){
 								Log.d(TAG+" POST RESPONSE:", responseString);
 							}
+							if(trace!=null){
+								trace.succeeded();
+							}
 							sendRequestCompleteEvent(requestCode, responseString, extras);
 						}
 						else{
+							if(trace!=null){
+								trace.failed(ERROR_EMPTY_RESPONSE);
+							}
 							sendErrorEvent(requestCode, ERROR_EMPTY_RESPONSE, extras);
 						}
 					}
 					else{
+						if(trace!=null){
+							trace.failed(ERROR_URL_INVALID);
+						}
 						sendErrorEvent(requestCode, ERROR_URL_INVALID, extras);
 					}
 				}
@@ -316,13 +416,14 @@ public class Http {
 	 */
 	public void executePostRequest(final Integer requestCode, final String address, final File fileToUpload, final int maximumRetries, final boolean allowCaching, final Bundle extras) {
 		if(isConnected()){
-			lastFileProgressEventTimestamp = 0;
 			Thread getRequestThread = new Thread(new Runnable() {
 				@Override
 				public void run() {
 					if(debugRequests){
 						Log.d(TAG+" POST REQUEST:", address);
 					}
+					RequestTrace trace = startTrace("POST", address);
+					TransferProgress transfer = null;
 					
 					int fileLength = 0;
 					
@@ -340,12 +441,15 @@ public class Http {
 							fileLength = (int) fileToUpload.length();		//Get the file length. Because this is an int, 2GB is the maximum file size
 							if(!fileToUpload.exists()){
 								Log.e(TAG, "File does not exist, path: "+fileToUpload.getAbsolutePath());
+								if(trace!=null){
+									trace.failed(ERROR_LOCAL_FILE_INVALID);
+								}
 								sendErrorEvent(requestCode, ERROR_LOCAL_FILE_INVALID, extras);
 							}
 							byte[] buffer = new byte[bufferLength];
 							fileInputStream = new FileInputStream(fileToUpload);
 							
-							HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();	//Make a new URL connection
+							HttpURLConnection urlConnection = openConnection(url);	//Make a new URL connection
 							urlConnection.setReadTimeout(60000);	//Set a timeout of 60 seconds for reading the response from the server
 							urlConnection.setDoOutput(true);		//We need to output data
 							//connection.setDoInput(true);		//We need to recieve data
@@ -361,7 +465,9 @@ public class Http {
 							//connection.setChunkedStreamingMode(bufferLength);
 							
 							long bytesUploaded = 0;		//Keep a local counter of the bytes we have transferred, this is used after the stream writing is completed
+							transfer = progressDispatcher.startTransfer(requestCode, fileLength, extras);
 							
+							connect(urlConnection, trace);
 							OutputStream outputStream = urlConnection.getOutputStream();		//Open an  output stream, this is the raw file data, uncompressed
 							DeflaterOutputStream compressedOutputStream = new DeflaterOutputStream(outputStream);
 							
@@ -370,18 +476,19 @@ public class Http {
 									fileInputStream.read(buffer, 0, bufferLength);		//Read into the buffer until the buffer is full
 									compressedOutputStream.write(buffer, 0, bufferLength);		//Read from the contents of the buffer and write the bytes we read to a compressed output stream
 									bytesUploaded+= bufferLength;
-									if((System.currentTimeMillis() - lastFileProgressEventTimestamp) > MIN_FILE_UPLOAD_INTERVAL_MS){
-										sendNewProgressEvent(requestCode, bytesUploaded, fileLength, extras);
-									}
+									transfer.addBytes(bufferLength);
 								}
 								else{														//True if this will be the last read from this file. In this case, we do the same as above, but only read until the end fo the file, meaning the buffer may not be full after the read
 									fileInputStream.read(buffer, 0, fileLength - i);
 									compressedOutputStream.write(buffer, 0, fileLength - i);
 									bytesUploaded+= fileLength - i;
-									sendNewProgressEvent(requestCode, bytesUploaded, fileLength, extras);
+									transfer.addBytes(fileLength - i);
 								}
 							}
-							Log.d(TAG, "Upload complete, bytes: "+bytesUploaded);
+							progressDispatcher.finishTransfer(transfer);
+							if(debugRequests){
+								Log.d(TAG, "Upload complete, bytes: "+bytesUploaded);
+							}
 							
 							//Close the streams
 							fileInputStream.close();				
@@ -391,22 +498,38 @@ public class Http {
 		
 							outputStream.flush();
 							outputStream.close();
+							if(trace!=null){
+								trace.phaseReached(RequestTrace.PHASE_REQUEST_SENT);
+								trace.setBytesSent(bytesUploaded);
+							}
 					
 							//Read the response from the server
-							String responseString = readResponse(urlConnection);
+							String responseString = readResponse(urlConnection, trace);
 							urlConnection.disconnect();	//Close the connection to free up resources
 							
 							if(responseString!=null){
 								if(debugRequests){
 									Log.d(TAG+" POST RESPONSE:", responseString);
 								}
+								if(trace!=null){
+									trace.succeeded();
+								}
 								sendRequestCompleteEvent(requestCode, responseString, extras);
 							}
 							else{
+								if(trace!=null){
+									trace.failed(ERROR_EMPTY_RESPONSE);
+								}
 								sendErrorEvent(requestCode, ERROR_EMPTY_RESPONSE, extras);
 							}
 						}
 						catch (Exception e){
+							if(trace!=null){
+								trace.threwException(e);
+							}
+							if(transfer!=null){
+								progressDispatcher.cancelTransfer(transfer);
+							}
 							Log.d(TAG, "Exception while executing request, retrying, retries remaining: "+maximumRetries);
 							//The policy in this case is to retry the connection, provided we have not already reached the maximum number of retries
 							if(maximumRetries>0){			//True if there is still at least one retry left
@@ -420,6 +543,9 @@ public class Http {
 						}
 					}
 					else{
+						if(trace!=null){
+							trace.failed(ERROR_URL_INVALID);
+						}
 						sendErrorEvent(requestCode, ERROR_URL_INVALID, extras);
 					}
 				}
@@ -443,6 +569,7 @@ public class Http {
 							Log.d(TAG+" "+requestMethod.stringValue+" BODY:", body);
 						}
 					}
+					RequestTrace trace = startTrace(requestMethod.stringValue, address);
 					String responseString = null;
 	
 					URL url = null;
@@ -455,7 +582,7 @@ public class Http {
 					}
 					if(url!=null){
 						try {
-							urlConnection = (HttpURLConnection) url.openConnection();
+							urlConnection = openConnection(url);
 							urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MS);
 							urlConnection.setReadTimeout(READ_TIMEOUT_MS);
 							
@@ -474,33 +601,53 @@ public class Http {
 							}
 							
 							if(body!=null){
-								urlConnection.setFixedLengthStreamingMode(body.getBytes().length);
+								int bodyLength = body.getBytes().length;
+								urlConnection.setFixedLengthStreamingMode(bodyLength);
+								connect(urlConnection, trace);
 			
 								PrintWriter out = new PrintWriter(urlConnection.getOutputStream());
 								out.print(body);
 								out.close();
+								if(trace!=null){
+									trace.phaseReached(RequestTrace.PHASE_REQUEST_SENT);
+									trace.setBytesSent(bodyLength);
+								}
 							}
+							connect(urlConnection, trace);		//Does nothing if the body has already been sent
 							
 							int responseCode = urlConnection.getResponseCode();
 							if(debugRequests){
 								Log.d(TAG, "Response code: "+responseCode);
 							}
+							if(trace!=null){
+								trace.phaseReached(RequestTrace.PHASE_RESPONSE_HEADERS_RECEIVED);
+								trace.setResponseCode(responseCode);
+							}
 							if(!responseCodeOk(responseCode)){		//Response code was not ok, output a log message
 								Log.e(TAG, "Error executing "+requestMethod.stringValue+" request, response code was: "+responseCode);
 							}
-							responseString = readResponse(urlConnection);
+							responseString = readResponse(urlConnection, trace);
 							
 							if(responseString!=null){
 								if(debugRequests){
 									Log.d(TAG+" "+requestMethod.stringValue+" RESPONSE:", responseString);
 								}
+								if(trace!=null){
+									trace.succeeded();
+								}
 								sendRequestCompleteEvent(requestCode, responseString, extras);
 							}
 							else{
+								if(trace!=null){
+									trace.failed(ERROR_EMPTY_RESPONSE);
+								}
 								sendErrorEvent(requestCode, ERROR_EMPTY_RESPONSE, extras);
 							}
 						}
 						catch (Exception e) {		//Reach here if the server didn't give us a socket or some other exception occurred
+							if(trace!=null){
+								trace.threwException(e);
+							}
 							//The policy in this case is to retry the connection, provided we have not already reached the maximum number of retries
 							if(maximumRetries>0){			//True if there is still at least one retry left
 								Log.e(TAG, "Exception while executing request: "+e.toString());
@@ -513,6 +660,9 @@ public class Http {
 						}
 					}
 					else{
+						if(trace!=null){
+							trace.failed(ERROR_URL_INVALID);
+						}
 						sendErrorEvent(requestCode, ERROR_URL_INVALID, extras);
 					}
 				}
@@ -525,73 +675,138 @@ public class Http {
 	}
 	
 	public void downloadFile(final Integer requestCode, final String address, final HashMap<String, String> headers, final String destinationPath, final String desiredFileName, final int maximumRetries, final int timeoutSeconds, final Bundle extras){
-		Log.d(TAG, "Downloading from: "+address+" to: "+destinationPath);
+		if(debugRequests){
+			Log.d(TAG, "Downloading from: "+address+" to: "+destinationPath);
+		}
 		Thread downloadFileThread = new Thread(new Runnable() {
 			public void run(){
+				final DownloadCache cache = DownloadCache.isCacheableRequest(headers) ? downloadCache : null;
+				final String cacheKey = cache!=null ? DownloadCache.getKey(address, headers) : null;
+				DownloadCache.CacheEntry cacheEntry = cache!=null ? cache.get(cacheKey) : null;
+				RequestTrace trace = null;
+				TransferProgress transfer = null;
+				DownloadCache.EntryWriter cacheWriter = null;
 				try {
+					if(cacheEntry!=null && cacheEntry.isFresh()){		//The cached copy can be used without contacting the server
+						if(debugRequests){
+							Log.d(TAG, "Cache hit: "+address);
+						}
+						if(deliverCachedFile(requestCode, cache, cacheEntry, destinationPath, desiredFileName, extras)){
+							return;
+						}
+						cacheEntry = null;		//The cached copy could not be read, so download it again
+					}
+					
+					trace = startTrace("GET", address);
 					URL url = new URL(address);
-					HttpURLConnection httpConn = (HttpURLConnection) url.openConnection();
+					HttpURLConnection httpConn = openConnection(url);
 					httpConn.setReadTimeout(timeoutSeconds * 1000);
 					
 					if(headers!=null){
 						addRequestHeadersToConnection(httpConn, headers);
 					}
+					if(cacheEntry!=null){
+						cache.addValidatorsToConnection(httpConn, cacheEntry);
+					}
+					connect(httpConn, trace);
 					
 					int responseCode = httpConn.getResponseCode();
+					if(trace!=null){
+						trace.phaseReached(RequestTrace.PHASE_RESPONSE_HEADERS_RECEIVED);
+						trace.setResponseCode(responseCode);
+					}
 
 					// always check HTTP response code first
-					Log.d(TAG, "Response code: "+responseCode);
-					if(responseCode == HttpURLConnection.HTTP_OK) {
-						String fileName = "";
-						String disposition = httpConn.getHeaderField("Content-Disposition");
-
-						if(desiredFileName!=null){
-							fileName = desiredFileName;
+					if(debugRequests){
+						Log.d(TAG, "Response code: "+responseCode);
+					}
+					if(responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cacheEntry!=null) {
+						if(debugRequests){
+							Log.d(TAG, "Cache revalidated: "+address);
 						}
-						else if(disposition!=null){
-							// extracts file name from header field
-							int index = disposition.indexOf("filename=");
-							if (index > 0) {
-								fileName = disposition.substring(index + 10,
-										disposition.length() - 1);
-							}
+						cache.entryRevalidated(cacheEntry, httpConn);
+						if(trace!=null){
+							trace.succeeded();
 						}
-						else{
-							// extracts file name from URL
-							fileName = address.substring(address.lastIndexOf("/") + 1, address.length());
+						if(!deliverCachedFile(requestCode, cache, cacheEntry, destinationPath, desiredFileName, extras)){
+							//The cached copy could not be read and has been removed from the cache, so download it again without validators
+							downloadFile(requestCode, address, headers, destinationPath, desiredFileName, maximumRetries, timeoutSeconds, extras);
 						}
+					}
+					else if(responseCode == HttpURLConnection.HTTP_OK) {
+						String fileName = getDownloadFileName(address, desiredFileName, httpConn.getHeaderField("Content-Disposition"));
 
 						//Open input stream from the HTTP connection
 						InputStream inputStream = httpConn.getInputStream();
 						String saveFilePath = destinationPath + File.separator + fileName;
 
+						long totalBytes = 0;
+						transfer = progressDispatcher.startTransfer(requestCode, httpConn.getContentLength(), extras);
+						inputStream = new ProgressInputStream(inputStream, transfer);
+						if(cache!=null && cache.isCacheable(httpConn)){
+							cacheWriter = cache.startPut(httpConn.getContentLength());		//Filled as the file is downloaded, so caching needs no extra pass over the file
+						}
+
 						// opens an output stream to save into file
 						FileOutputStream outputStream = new FileOutputStream(saveFilePath);
 
-						int totalBytes = 0;
 						int bytesRead = -1;
 						byte[] buffer = new byte[4096];
 						while ((bytesRead = inputStream.read(buffer)) != -1) {
 							outputStream.write(buffer, 0, bytesRead);
+							if(cacheWriter!=null){
+								cacheWriter.write(buffer, 0, bytesRead);
+							}
 							totalBytes+= bytesRead;
 						}
-						Log.d(TAG, "BYTES READ: "+totalBytes);
 						outputStream.close();
 						inputStream.close();
+						progressDispatcher.finishTransfer(transfer);
+						if(debugRequests){
+							Log.d(TAG, "BYTES READ: "+totalBytes);
+						}
+						if(trace!=null){
+							trace.phaseReached(RequestTrace.PHASE_RESPONSE_BODY_RECEIVED);
+							trace.setBytesReceived(totalBytes);
+						}
 						File downloadedFile = new File(saveFilePath);
 						if(downloadedFile.exists()){
+							if(trace!=null){
+								trace.succeeded();
+							}
 							sendDownloadCompleteEvent(requestCode, downloadedFile, extras);
+							if(cacheWriter!=null){
+								cacheWriter.commit(cacheKey, httpConn, fileName);		//Never throws, a cache failure only means the next download is not cached
+							}
 						}
 						else{
+							if(cacheWriter!=null){
+								cacheWriter.abandon();
+							}
+							if(trace!=null){
+								trace.failed(ERROR_LOCAL_FILE_INVALID);
+							}
 							sendErrorEvent(requestCode, ERROR_LOCAL_FILE_INVALID, extras);
 						}
 					}
 					else {
+						if(trace!=null){
+							trace.failed(ERROR_URL_INVALID);
+						}
 						sendErrorEvent(requestCode, ERROR_URL_INVALID, extras);
 					}
 					httpConn.disconnect();
 				}
 				catch (IOException e) {
+					if(trace!=null){
+						trace.threwException(e);
+					}
+					if(transfer!=null){
+						progressDispatcher.cancelTransfer(transfer);
+					}
+					if(cacheWriter!=null){
+						cacheWriter.abandon();
+					}
 					//The policy in this case is to retry the connection, provided we have not already reached the maximum number of retries
 					if(maximumRetries>0){			//True if there is still at least one retry left
 						Log.e(TAG, "Exception while executing request: "+e.toString());
@@ -606,10 +821,72 @@ public class Http {
 		});
 		downloadFileThread.start();
 	}
+	
+	private boolean deliverCachedFile(Integer requestCode, DownloadCache cache, DownloadCache.CacheEntry cacheEntry, String destinationPath, String desiredFileName, Bundle extras) {
+		File downloadedFile = new File(destinationPath + File.separator + (desiredFileName!=null ? desiredFileName : cacheEntry.fileName));
+		if(cache.copyToFile(cacheEntry, downloadedFile)){
+			sendDownloadCompleteEvent(requestCode, downloadedFile, extras);
+			return true;
+		}
+		return false;
+	}
+	
+	private String getDownloadFileName(String address, String desiredFileName, String disposition) {
+		String fileName = "";
+		if(desiredFileName!=null){
+			fileName = desiredFileName;
+		}
+		else if(disposition!=null){
+			// extracts file name from header field
+			int index = disposition.indexOf("filename=");
+			if (index > 0) {
+				fileName = disposition.substring(index + 10,
+						disposition.length() - 1);
+			}
+		}
+		else{
+			// extracts file name from URL
+			fileName = address.substring(address.lastIndexOf("/") + 1, address.length());
+		}
+		return fileName;
+	}
 
-	private String readResponse(HttpURLConnection urlConnection) {
+	/**
+	 * Connects a traced request explicitly, so that its trace records when the connection was established. Untraced requests
+	 * are left to connect implicitly, as they always have. Must be called after all request properties have been set.
+	 * @param urlConnection		The connection to connect.
+	 * @param trace				The trace of this request, or null if it is not being traced.
+	 * @throws IOException		If the connection failed. The same exception would otherwise be thrown by the next use of the connection.
+	 */
+	private void connect(HttpURLConnection urlConnection, RequestTrace trace) throws IOException {
+		if(trace!=null){
+			urlConnection.connect();
+			trace.phaseReached(RequestTrace.PHASE_CONNECTED);
+		}
+	}
+
+	/**
+	 * Reads the whole response body as text.
+	 * @param urlConnection		The connection to read from.
+	 * @param trace				The trace of this request, or null if it is not being traced. If the response code has not been
+	 * 							recorded yet it is recorded here, along with the size in bytes and receipt time of any body that is read.
+	 * @return					The response body, or null if it could not be read.
+	 */
+	private String readResponse(HttpURLConnection urlConnection, RequestTrace trace) {
 		try {
-			InputStream in = new BufferedInputStream(urlConnection.getInputStream());
+			if(trace!=null && trace.getResponseCode()==-1){		//Any exception here would equally have been thrown by getInputStream(), so tracing does not change the outcome
+				connect(urlConnection, trace);
+				int responseCode = urlConnection.getResponseCode();
+				trace.phaseReached(RequestTrace.PHASE_RESPONSE_HEADERS_RECEIVED);
+				trace.setResponseCode(responseCode);
+			}
+			InputStream in = urlConnection.getInputStream();
+			CountingInputStream countingStream = null;
+			if(trace!=null){		//Only count bytes for traced requests, so untraced requests pay nothing
+				countingStream = new CountingInputStream(in);
+				in = countingStream;
+			}
+			in = new BufferedInputStream(in);
 			StringBuilder sb = new StringBuilder();
 			BufferedReader r = new BufferedReader(new InputStreamReader(in), 1000);
 
@@ -618,6 +895,11 @@ public class Http {
 			}
 
 			in.close();
+			
+			if(countingStream!=null){
+				trace.phaseReached(RequestTrace.PHASE_RESPONSE_BODY_RECEIVED);
+				trace.setBytesReceived(countingStream.getCount());
+			}
 
 			return sb.toString();
 		}
@@ -629,20 +911,6 @@ public class Http {
 		}
 	}
 
-	private void sendNewProgressEvent(final Integer requestCode, final long bytesUploaded, final long fileSize, final Bundle extras) {
-		Log.d(TAG, "TIME: "+System.currentTimeMillis());
-		if(parentInterface!=null && requestCode!=null){
-			Runnable uiThreadTask = new Runnable() {
-				@Override
-				public void run() {
-					parentInterface.newProgress(requestCode, fileSize, bytesUploaded, extras);
-				}
-			};
-			handler.post(uiThreadTask);
-		}
-		lastFileProgressEventTimestamp = System.currentTimeMillis();
-	}
-	
 	private void sendDownloadCompleteEvent(final int requestCode, final File downloadedFile, final Bundle extras) {
 		if(parentInterface!=null){
 			Runnable uiThreadTask = new Runnable() {
@@ -678,4 +946,4 @@ public class Http {
 			handler.post(uiThreadTask);
 		}
 	}
-}
\ No newline at end of file
+}
@@ -12,10 +12,11 @@ public interface HttpEvents{
 	/**
 	 * Called when there is new progress to report during a file upload or download.
 	 * This may be called multiple times during the process, but there will always be at least 100ms between successive calls, to avoid
-	 * spamming the UI thread. One exception to this rule is that this event is sent when the last set of bytes have been processed,
-	 * irrespective of when the previous event was sent.
+	 * spamming the UI thread. Progress for all of an {@link Http} object's concurrent transfers is batched together within that interval.
+	 * One exception to this rule is that this event is sent when the last set of bytes have been processed, irrespective of when the
+	 * previous event was sent. This final event is always received before the corresponding completion event.
 	 * @param requestCode		The integer code provided when the request was executed.
-	 * @param bytesTotal		The size of the file being processed, in bytes.
+	 * @param bytesTotal		The size of the file being processed, in bytes, or -1 if the size of a download is not known.
 	 * @param bytesProcessed	The number of bytes processed so far.
 	 * @param extras			The {@link Bundle} of extras that was provided when the requested was executed. This will be null if no extras were provided.
 	 */
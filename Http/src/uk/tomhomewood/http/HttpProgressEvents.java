@@ -0,0 +1,23 @@
+package uk.tomhomewood.http;
+
+import android.os.Bundle;
+
+/**
+ * An extension of {@link HttpEvents} for listeners that also want transfer rate and time remaining estimates.
+ * If the listener passed to {@link Http} implements this interface, progress is reported through
+ * {@link #newProgress(int, long, long, long, long, Bundle)} instead of {@link HttpEvents#newProgress(int, long, long, Bundle)}.
+ */
+public interface HttpProgressEvents extends HttpEvents{
+
+	/**
+	 * Called when there is new progress to report during a file upload or download. The same timing rules as
+	 * {@link HttpEvents#newProgress(int, long, long, Bundle)} apply.
+	 * @param requestCode			The integer code provided when the request was executed.
+	 * @param bytesTotal			The size of the file being processed, in bytes, or -1 if the size is not known.
+	 * @param bytesProcessed		The number of bytes processed so far.
+	 * @param bytesPerSecond		The estimated current transfer rate, in bytes per second.
+	 * @param msRemaining			The estimated time until the transfer is complete, in milliseconds, or -1 if this cannot be estimated.
+	 * @param extras				The {@link Bundle} of extras that was provided when the requested was executed. This will be null if no extras were provided.
+	 */
+	public void newProgress(int requestCode, long bytesTotal, long bytesProcessed, long bytesPerSecond, long msRemaining, Bundle extras);
+}
@@ -0,0 +1,135 @@
+package uk.tomhomewood.http;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.Bundle;
+import android.os.Handler;
+
+/**
+ * Delivers progress events for all of an {@link Http} object's active transfers to the UI thread.
+ * Transfer threads only update atomic counters; the first update after a dispatch schedules a single post to the {@link Handler},
+ * which then reports every transfer that has made progress. This means there is at most one post per interval, however many
+ * transfers are running and however small their chunks are.
+ */
+class ProgressDispatcher {
+	private final Handler handler;
+	private final HttpEvents listener;
+	private final long intervalMs;
+
+	private final ConcurrentLinkedQueue<TransferProgress> activeTransfers;
+	private final AtomicBoolean dispatchScheduled;
+	private volatile long lastDispatchTimestamp;
+
+	private final Runnable dispatchTask = new Runnable() {
+		@Override
+		public void run() {
+			dispatch();
+		}
+	};
+
+	/**
+	 * Constructor.
+	 * @param handler		The {@link Handler} used to post events to the UI thread.
+	 * @param listener		The listener to send events to. If this is null, no progress is tracked.
+	 * @param intervalMs	The minimum time between successive dispatches, in milliseconds.
+	 */
+	ProgressDispatcher(Handler handler, HttpEvents listener, long intervalMs){
+		this.handler = handler;
+		this.listener = listener;
+		this.intervalMs = intervalMs;
+		activeTransfers = new ConcurrentLinkedQueue<TransferProgress>();
+		dispatchScheduled = new AtomicBoolean();
+	}
+
+	/**
+	 * Starts tracking a transfer.
+	 * @param requestCode		The request code of the transfer. If this is null, the transfer's progress is not reported.
+	 * @param bytesTotal		The size of the transfer, in bytes, or -1 if it is not known.
+	 * @param extras			The extras to report with progress events.
+	 * @return					The new transfer.
+	 */
+	TransferProgress startTransfer(Integer requestCode, long bytesTotal, Bundle extras){
+		boolean reported = listener!=null && requestCode!=null;
+		TransferProgress transfer = new TransferProgress(this, requestCode, bytesTotal, extras, reported);
+		if(reported){
+			activeTransfers.add(transfer);
+		}
+		return transfer;
+	}
+
+	/**
+	 * Marks a transfer as complete. Its final progress is posted immediately, so it is always delivered before any completion
+	 * event that is posted afterwards. Only this transfer is reported, so other transfers keep to the normal interval.
+	 * @param transfer		The transfer that has completed.
+	 */
+	void finishTransfer(final TransferProgress transfer){
+		if(transfer.reported){
+			transfer.finished = true;
+			handler.post(new Runnable() {
+				@Override
+				public void run() {
+					activeTransfers.remove(transfer);
+					report(transfer, transfer.getBytesProcessed(), true, System.currentTimeMillis());
+				}
+			});
+		}
+	}
+
+	/**
+	 * Stops tracking a transfer without reporting any further progress, e.g. because it failed and will be retried.
+	 * @param transfer		The transfer to stop tracking.
+	 */
+	void cancelTransfer(TransferProgress transfer){
+		activeTransfers.remove(transfer);
+	}
+
+	/**
+	 * Called by a transfer whenever its byte count changes. Schedules a dispatch unless one is already pending.
+	 */
+	void transferUpdated(){
+		if(!dispatchScheduled.get() && dispatchScheduled.compareAndSet(false, true)){		//The plain read avoids a contended write on every chunk while a dispatch is pending
+			long delay = lastDispatchTimestamp + intervalMs - System.currentTimeMillis();
+			if(delay>0){
+				handler.postDelayed(dispatchTask, delay);
+			}
+			else{
+				handler.post(dispatchTask);
+			}
+		}
+	}
+
+	/**
+	 * Reports progress for every unfinished transfer that has changed since the last dispatch. Finished transfers are reported by
+	 * the task posted in {@link #finishTransfer(TransferProgress)}. Runs on the UI thread.
+	 */
+	private void dispatch(){
+		long now = System.currentTimeMillis();
+		lastDispatchTimestamp = now;		//Written before the flag is cleared, so an update that schedules the next dispatch always delays it by a full interval
+		dispatchScheduled.set(false);		//Cleared before reading transfers, so that any update racing with this dispatch schedules another one
+		for(TransferProgress transfer : activeTransfers){
+			if(!transfer.finished){
+				report(transfer, transfer.getBytesProcessed(), false, now);
+			}
+		}
+	}
+
+	/**
+	 * Sends a progress event for a transfer if it has changed since it was last reported. Runs on the UI thread.
+	 * @param transfer		The transfer to report.
+	 * @param processed		The number of bytes processed at this point.
+	 * @param finished		True if this is the transfer's final report.
+	 * @param now			The current time, in milliseconds.
+	 */
+	private void report(TransferProgress transfer, long processed, boolean finished, long now){
+		if(processed!=transfer.lastDispatchedBytes && (processed>0 || finished)){		//Transfers that have not started yet are skipped, unless they are empty
+			transfer.updateRate(processed, now);
+			if(listener instanceof HttpProgressEvents){
+				((HttpProgressEvents) listener).newProgress(transfer.requestCode, transfer.bytesTotal, processed, transfer.bytesPerSecond, transfer.getMsRemaining(processed), transfer.extras);
+			}
+			else{
+				listener.newProgress(transfer.requestCode, transfer.bytesTotal, processed, transfer.extras);
+			}
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package uk.tomhomewood.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An {@link InputStream} that records the bytes read through it against a {@link TransferProgress}.
+ */
+class ProgressInputStream extends FilterInputStream {
+	private final TransferProgress transfer;
+
+	ProgressInputStream(InputStream in, TransferProgress transfer){
+		super(in);
+		this.transfer = transfer;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if(b!=-1){
+			transfer.addBytes(1);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int count) throws IOException {
+		int bytesRead = super.read(buffer, offset, count);
+		if(bytesRead>0){
+			transfer.addBytes(bytesRead);
+		}
+		return bytesRead;
+	}
+
+	@Override
+	public long skip(long count) throws IOException {
+		long bytesSkipped = super.skip(count);
+		if(bytesSkipped>0){
+			transfer.addBytes(bytesSkipped);
+		}
+		return bytesSkipped;
+	}
+}
@@ -0,0 +1,208 @@
+package uk.tomhomewood.http;
+
+/**
+ * A structured record of a single HTTP request attempt, created by a {@link RequestTracer}.
+ * Only the method, host, timings, sizes and outcome are recorded. Request and response bodies, paths, query strings and
+ * headers are never stored, so traces may be exported without leaking user data.
+ * A trace is written by the thread executing its request, and is stored in its {@link RequestTracer} when it is finished.
+ */
+public class RequestTrace {
+	public static final int PHASE_CONNECTED = 0;
+	public static final int PHASE_REQUEST_SENT = 1;
+	public static final int PHASE_RESPONSE_HEADERS_RECEIVED = 2;
+	public static final int PHASE_RESPONSE_BODY_RECEIVED = 3;
+	private static final int PHASE_COUNT = 4;
+
+	private static final String[] PHASE_NAMES = {"connected", "sent", "headers", "body"};
+
+	public static final int OUTCOME_IN_PROGRESS = 0;
+	public static final int OUTCOME_SUCCESS = 1;
+	public static final int OUTCOME_ERROR = 2;
+	public static final int OUTCOME_EXCEPTION = 3;
+
+	private final RequestTracer tracer;
+	private final String method;
+	private final String host;
+	private final long startTimestamp;
+	private final long startNanos;
+	private final long[] phaseElapsedNanos;
+
+	private long bytesSent;
+	private long bytesReceived;
+	private int responseCode;
+	private int outcome;
+	private int errorCode;
+	private String exceptionName;
+	private long totalElapsedNanos;
+
+	long sequence;		//Position in the tracer's ring buffer, set when the trace is recorded
+
+	RequestTrace(RequestTracer tracer, String method, String host){
+		this.tracer = tracer;
+		this.method = method;
+		this.host = host;
+		startTimestamp = System.currentTimeMillis();
+		startNanos = System.nanoTime();
+		phaseElapsedNanos = new long[PHASE_COUNT];
+		responseCode = -1;
+		outcome = OUTCOME_IN_PROGRESS;
+	}
+
+	/**
+	 * Records that the request has reached a phase. Only the first time each phase is reached is recorded.
+	 * @param phase		One of the PHASE_xx constants defined in this class.
+	 */
+	void phaseReached(int phase){
+		if(phaseElapsedNanos[phase]==0){
+			phaseElapsedNanos[phase] = System.nanoTime() - startNanos;
+		}
+	}
+
+	void setBytesSent(long bytesSent){
+		this.bytesSent = bytesSent;
+	}
+
+	void setBytesReceived(long bytesReceived){
+		this.bytesReceived = bytesReceived;
+	}
+
+	void setResponseCode(int responseCode){
+		this.responseCode = responseCode;
+	}
+
+	void succeeded(){
+		finish(OUTCOME_SUCCESS);
+	}
+
+	/**
+	 * @param errorCode		One of the ERROR_xx constants defined in {@link Http}.
+	 */
+	void failed(int errorCode){
+		this.errorCode = errorCode;
+		finish(OUTCOME_ERROR);
+	}
+
+	void threwException(Exception e){
+		exceptionName = e.getClass().getSimpleName();
+		finish(OUTCOME_EXCEPTION);
+	}
+
+	private void finish(int outcome){
+		if(this.outcome!=OUTCOME_IN_PROGRESS){		//Already finished, e.g. an error was reported before an exception was thrown
+			return;
+		}
+		totalElapsedNanos = System.nanoTime() - startNanos;
+		this.outcome = outcome;
+		tracer.record(this);
+	}
+
+	/**
+	 * @return		The HTTP method of the request, e.g. "GET".
+	 */
+	public String getMethod(){
+		return method;
+	}
+
+	/**
+	 * @return		The host the request was sent to, or null if the address was invalid.
+	 */
+	public String getHost(){
+		return host;
+	}
+
+	/**
+	 * @return		The wall clock time at which the request started, in milliseconds since the epoch.
+	 */
+	public long getStartTimestamp(){
+		return startTimestamp;
+	}
+
+	/**
+	 * @param phase		One of the PHASE_xx constants defined in this class.
+	 * @return			The time from the start of the request until the phase was reached, in milliseconds, or 0 if it was not reached.
+	 */
+	public long getPhaseElapsedMs(int phase){
+		return phaseElapsedNanos[phase] / 1000000;
+	}
+
+	/**
+	 * @return		The total duration of the request, in milliseconds.
+	 */
+	public long getTotalElapsedMs(){
+		return totalElapsedNanos / 1000000;
+	}
+
+	/**
+	 * @return		The size of the request body, in bytes.
+	 */
+	public long getBytesSent(){
+		return bytesSent;
+	}
+
+	/**
+	 * @return		The number of response body bytes read from the connection, or 0 if no body was read.
+	 */
+	public long getBytesReceived(){
+		return bytesReceived;
+	}
+
+	/**
+	 * @return		The HTTP response code, or -1 if no response was received.
+	 */
+	public int getResponseCode(){
+		return responseCode;
+	}
+
+	/**
+	 * @return		One of the OUTCOME_xx constants defined in this class.
+	 */
+	public int getOutcome(){
+		return outcome;
+	}
+
+	/**
+	 * @return		The ERROR_xx constant defined in {@link Http} describing the failure, if the outcome is {@link #OUTCOME_ERROR}.
+	 */
+	public int getErrorCode(){
+		return errorCode;
+	}
+
+	/**
+	 * @return		The simple class name of the exception that ended the request, if the outcome is {@link #OUTCOME_EXCEPTION}.
+	 */
+	public String getExceptionName(){
+		return exceptionName;
+	}
+
+	/**
+	 * @return		A single line, human readable summary of this trace.
+	 */
+	@Override
+	public String toString(){
+		StringBuilder sb = new StringBuilder();
+		sb.append(startTimestamp).append(' ').append(method).append(' ').append(host);
+		for(int i=0; i<PHASE_COUNT; i++){
+			if(phaseElapsedNanos[i]>0){
+				sb.append(' ').append(PHASE_NAMES[i]).append('=').append(getPhaseElapsedMs(i)).append("ms");
+			}
+		}
+		sb.append(" total=").append(getTotalElapsedMs()).append("ms");
+		sb.append(" sent=").append(bytesSent).append(" received=").append(bytesReceived);
+		sb.append(" code=").append(responseCode);
+		switch(outcome){
+		case OUTCOME_SUCCESS:
+			sb.append(" success");
+			break;
+		case OUTCOME_ERROR:
+			sb.append(" error=").append(errorCode);
+			break;
+		case OUTCOME_EXCEPTION:
+			sb.append(" exception=").append(exceptionName);
+			break;
+		default:
+			sb.append(" in progress");
+			break;
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,133 @@
+package uk.tomhomewood.http;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import android.util.Log;
+
+/**
+ * Records a sample of HTTP requests as {@link RequestTrace}s in a fixed size ring buffer.
+ * Recording is lock free, so tracing never blocks request threads, and when a request is not sampled the only cost is a
+ * single atomic increment. Once the buffer is full, the oldest traces are overwritten.
+ * Attach a tracer to an {@link Http} object with {@link Http#setRequestTracer(RequestTracer)}.
+ */
+public class RequestTracer {
+	private final static String TAG = "HTTP TRACE";
+
+	private final AtomicReferenceArray<RequestTrace> traces;
+	private final AtomicLong tracesRecorded;
+	private final AtomicLong requestsSeen;
+
+	private volatile int sampleInterval;
+
+	/**
+	 * Constructor.
+	 * @param capacity			The maximum number of traces held. Once this many have been recorded, the oldest are overwritten.
+	 * @param sampleInterval	How often requests are traced. See {@link #setSampleInterval(int)}.
+	 */
+	public RequestTracer(int capacity, int sampleInterval){
+		if(capacity<=0){
+			throw new IllegalArgumentException("Capacity must be greater than zero");
+		}
+		traces = new AtomicReferenceArray<RequestTrace>(capacity);
+		tracesRecorded = new AtomicLong();
+		requestsSeen = new AtomicLong();
+		setSampleInterval(sampleInterval);
+	}
+
+	/**
+	 * Sets how often requests are traced. This may be changed at any time.
+	 * @param sampleInterval	0 to disable tracing, 1 to trace every request, or n to trace one in every n requests.
+	 */
+	public void setSampleInterval(int sampleInterval){
+		if(sampleInterval<0){
+			throw new IllegalArgumentException("Sample interval must not be negative");
+		}
+		this.sampleInterval = sampleInterval;
+	}
+
+	/**
+	 * Decides whether to trace a request, and if so starts a trace for it.
+	 * @param method		The HTTP method of the request.
+	 * @param address		The address of the request. Only the host is recorded.
+	 * @return				The new trace, or null if this request is not being traced.
+	 */
+	RequestTrace startTrace(String method, String address){
+		int interval = sampleInterval;
+		if(interval==0 || requestsSeen.getAndIncrement() % interval != 0){
+			return null;
+		}
+		String host = null;
+		try {
+			host = new URL(address).getHost();
+		}
+		catch (MalformedURLException e) {}
+		return new RequestTrace(this, method, host);
+	}
+
+	/**
+	 * Stores a finished trace in the buffer, overwriting the oldest trace if the buffer is full.
+	 * @param trace		The trace to store.
+	 */
+	void record(RequestTrace trace){
+		long index = tracesRecorded.getAndIncrement();
+		trace.sequence = index;		//Published by the set below
+		traces.set((int) (index % traces.length()), trace);
+	}
+
+	/**
+	 * Gets a snapshot of the traces currently held, oldest first. Traces recorded while this method is running may or may not be included,
+	 * and a slot that has been claimed by a recording thread but not yet written is skipped rather than returning the older trace it still holds.
+	 * @return		A new list of traces.
+	 */
+	public List<RequestTrace> getTraces(){
+		int capacity = traces.length();
+		long end = tracesRecorded.get();
+		long start = Math.max(0, end - capacity);
+		List<RequestTrace> snapshot = new ArrayList<RequestTrace>((int) (end - start));
+		for(long i=start; i<end; i++){
+			RequestTrace trace = traces.get((int) (i % capacity));
+			if(trace!=null && trace.sequence==i){
+				snapshot.add(trace);
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Removes all traces from the buffer.
+	 */
+	public void clear(){
+		for(int i=0; i<traces.length(); i++){
+			traces.set(i, null);
+		}
+	}
+
+	/**
+	 * Outputs all traces currently held to the Android system log, oldest first.
+	 */
+	public void dumpToLog(){
+		for(RequestTrace trace : getTraces()){
+			Log.d(TAG, trace.toString());
+		}
+	}
+
+	/**
+	 * Writes all traces currently held to a {@link Writer}, one per line, oldest first. The writer is not closed.
+	 * @param writer			The writer to export the traces to.
+	 * @throws IOException		If the writer throws an exception.
+	 */
+	public void writeTo(Writer writer) throws IOException {
+		for(RequestTrace trace : getTraces()){
+			writer.write(trace.toString());
+			writer.write("\n");
+		}
+		writer.flush();
+	}
+}
@@ -0,0 +1,79 @@
+package uk.tomhomewood.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Bundle;
+
+/**
+ * The progress of a single upload or download. The byte counter is updated by the thread performing the transfer, and read by
+ * the {@link ProgressDispatcher} on the UI thread. The rate estimate fields are only ever touched by the dispatcher.
+ */
+class TransferProgress {
+	private static final double RATE_SMOOTHING_FACTOR = 0.3;		//Weight given to the most recent interval when smoothing the transfer rate
+
+	final Integer requestCode;
+	final Bundle extras;
+	final long bytesTotal;
+	final boolean reported;		//False if nobody is listening for this transfer's progress, in which case it is never dispatched
+
+	private final ProgressDispatcher dispatcher;
+	private final AtomicLong bytesProcessed;
+	volatile boolean finished;
+
+	long lastDispatchedBytes;
+	long lastDispatchedTimestamp;
+	long bytesPerSecond;
+
+	TransferProgress(ProgressDispatcher dispatcher, Integer requestCode, long bytesTotal, Bundle extras, boolean reported){
+		this.dispatcher = dispatcher;
+		this.requestCode = requestCode;
+		this.bytesTotal = bytesTotal;
+		this.extras = extras;
+		this.reported = reported;
+		bytesProcessed = new AtomicLong();
+		lastDispatchedBytes = -1;
+		lastDispatchedTimestamp = System.currentTimeMillis();
+	}
+
+	/**
+	 * Records that more bytes have been transferred. This is cheap enough to call for every chunk.
+	 * @param bytes		The number of bytes transferred since the last call.
+	 */
+	void addBytes(long bytes){
+		bytesProcessed.addAndGet(bytes);
+		if(reported){
+			dispatcher.transferUpdated();
+		}
+	}
+
+	long getBytesProcessed(){
+		return bytesProcessed.get();
+	}
+
+	/**
+	 * Updates the smoothed transfer rate. Called by the dispatcher only.
+	 * @param processed		The number of bytes processed at this point.
+	 * @param now			The current time, in milliseconds.
+	 */
+	void updateRate(long processed, long now){
+		long elapsed = now - lastDispatchedTimestamp;
+		if(elapsed>0){
+			long bytesSinceLastDispatch = processed - Math.max(0, lastDispatchedBytes);
+			long currentRate = bytesSinceLastDispatch * 1000 / elapsed;
+			bytesPerSecond = lastDispatchedBytes<0 ? currentRate : (long) (RATE_SMOOTHING_FACTOR * currentRate + (1 - RATE_SMOOTHING_FACTOR) * bytesPerSecond);
+		}
+		lastDispatchedBytes = processed;
+		lastDispatchedTimestamp = now;
+	}
+
+	/**
+	 * @param processed		The number of bytes processed at this point.
+	 * @return				The estimated time until the transfer is complete, in milliseconds, or -1 if it cannot be estimated.
+	 */
+	long getMsRemaining(long processed){
+		if(bytesTotal<0 || bytesPerSecond<=0){
+			return -1;
+		}
+		return Math.max(0, bytesTotal - processed) * 1000 / bytesPerSecond;
+	}
+}